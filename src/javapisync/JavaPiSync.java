@@ -22,6 +22,9 @@ import com.dropbox.core.DbxRequestConfig;
 import com.dropbox.core.DbxWebAuthNoRedirect;
 import com.dropbox.core.DbxWriteMode;
 import com.dropbox.core.util.IOUtil;
+import com.fasterxml.jackson.core.JsonEncoding;
+import com.fasterxml.jackson.core.JsonFactory;
+import com.fasterxml.jackson.core.JsonGenerator;
 import java.io.BufferedReader;
 import java.io.BufferedWriter;
 import java.io.File;
@@ -40,18 +43,56 @@ import java.util.Locale;
 public class JavaPiSync {
 
     private static String PROGRAM_NAME = "JavaPiSync/1.0";
+    // Refuse to run when more than this share of the tracked files would go
+    private static final int DEFAULT_MAX_DELETE_PERCENT = 50;
+    // ...but only once more files than this would go, small cleanups always pass
+    private static final int MIN_DELETES_CHECKED = 5;
+    // Used for estimates until a real sync has measured something better
+    private static final long DEFAULT_UPLOAD_BYTES_PER_SEC = 100 * 1024;
+    private static final long DEFAULT_REQUEST_MILLIS = 500;
+    // Uploads of unknown length from this size on are sent in chunks of this size by the SDK
+    private static final long UPLOAD_CHUNK_SIZE = 4 * 1024 * 1024;
+    // Transfer times below this are mostly timer noise, don't derive a speed from them
+    private static final long MIN_MEASURED_TRANSFER_MILLIS = 100;
     private Configuration config = null;
     private String userLocale = null;
     private DbxRequestConfig requestConfig = null;
     private DbxClient dbxClient = null;
 
     public static void main(String[] args) {
-        // No arguments needed
-        new JavaPiSync();
+        boolean dryRun = false;
+        int maxDeletePercent = DEFAULT_MAX_DELETE_PERCENT;
+        for (String arg : args) {
+            if (arg.equals("--dry-run")) {
+                dryRun = true;
+            } else if (arg.startsWith("--max-delete=")) {
+                try {
+                    maxDeletePercent = Integer.parseInt(arg.substring(13).trim());
+                } catch (NumberFormatException nfe) {
+                    maxDeletePercent = -1;
+                }
+                if (maxDeletePercent < 0 || maxDeletePercent > 100) {
+                    System.err.println("Invalid --max-delete value, expected a percentage between 0 and 100!");
+                    System.err.println("Exiting now...");
+                    System.exit(1);
+                }
+            } else {
+                System.err.println("Unknown argument: " + arg);
+                System.err.println("Usage: java -jar JavaPiSync.jar [--dry-run] [--max-delete=PERCENT]");
+                System.exit(1);
+            }
+        }
+        new JavaPiSync(dryRun, maxDeletePercent);
     }
 
-    public JavaPiSync() {
+    public JavaPiSync(boolean dryRun, int maxDeletePercent) {
         File configFile = new File("config.dat");
+        if (dryRun && !configFile.exists()) {
+            // Keep stdout clean for the plan, so no interactive setup here
+            System.err.println("No config file found, run once without --dry-run to set things up!");
+            System.err.println("Exiting now...");
+            System.exit(1);
+        }
         config = new Configuration(configFile);
 
         // Init dropbox things
@@ -60,12 +101,19 @@ public class JavaPiSync {
         dbxClient = new DbxClient(requestConfig, config.getAccessToken(), DbxHost.Default);
 
         String accessToken = config.getAccessToken();
+        String syncFolder = config.getSyncFolder();
+        if (dryRun && (accessToken == null || accessToken.length() == 0
+                || syncFolder == null || syncFolder.length() == 0)) {
+            System.err.println("Config file is incomplete, run once without --dry-run to finish the setup!");
+            System.err.println("Exiting now...");
+            System.exit(1);
+        }
         if (accessToken == null || accessToken.length() == 0) {
             // No access token known. Do authorization process...
             config.doAuthorize();
         }
 
-        String syncFolder = config.getSyncFolder();
+        syncFolder = config.getSyncFolder();
         if (syncFolder == null || syncFolder.length() == 0) {
             // No syncFolder defined. Ask for one...
             config.setupSync();
@@ -74,95 +122,135 @@ public class JavaPiSync {
         FileStructure syncStructure = new FileStructure(config.getSyncFolder());
         syncStructure.syncLocal();
 
-        // Find deleted files
-        ArrayList<DropboxFile> deletedFiles = syncStructure.findDeleted();
-        DropboxFile drbf = null;
-        for (int x = 0; x < deletedFiles.size(); x++) {
-            drbf = deletedFiles.get(x);
-            if (drbf.getIsDir()) {
-                // Skip directories until second run...
-                // This to prevent deletion of the folder with files,
-                // and thus generating errors when deleting the files hereafter.
-                continue;
-            } else {
-                deleteFileFromDropbox(drbf);
-                deletedFiles.remove(x);
-                x--;
-            }
-            syncStructure.deleteSynced(drbf);
+        // Work out everything that has to happen before touching Dropbox
+        SyncPlan plan = new SyncPlan(syncStructure, maxDeletePercent);
+        if (dryRun) {
+            plan.printJson();
         }
-        // Sort directories by length, to nicely delete structures
-        ArrayList<DropboxFile> deletedFolders = new ArrayList<DropboxFile>();
-        if (deletedFiles.size() > 0) {
-            // There are still folders to delete!
-            while (deletedFiles.size() > 0) {
-                int maxLength = 0;
-                int maxIndex = 0;
-                for (int x = 0; x < deletedFiles.size(); x++) {
-                    if (deletedFiles.get(x).getName().length() > maxLength) {
-                        maxLength = deletedFiles.get(x).getName().length();
-                        maxIndex = x;
-                    }
-                }
-                deletedFolders.add(deletedFiles.remove(maxIndex));
-            }
-            for (DropboxFile df : deletedFolders) {
-                deleteFolderOnDropbox(df);
-                syncStructure.deleteSynced(df);
-            }
+
+        if (!plan.isWithinDeleteLimit()) {
+            System.err.println("Sync would delete " + plan.getDeleteCount() + " of "
+                    + plan.getTrackedCount() + " tracked files (more than " + maxDeletePercent + "%)!");
+            System.err.println("Check the sync folder, or rerun with a higher --max-delete value.");
+            System.err.println("Exiting now...");
+            System.exit(1);
         }
 
-        // Find changed files
-        ArrayList<DropboxFile> changedFiles = syncStructure.findChanged();
-        for (DropboxFile df : changedFiles) {
-            uploadFileToDropbox(df);
-            syncStructure.updateSynced(df);
+        if (dryRun) {
+            // Only the plan was asked for
+            return;
         }
 
-        // Find new files or directories
-        // Due to recursion, parent directories will always be created first
-        ArrayList<DropboxFile> newFiles = syncStructure.findNew();
-        for (DropboxFile df : newFiles) {
-            if (df.getIsDir()) {
-                createFolderOnDropbox(df);
+        executePlan(plan, syncStructure);
+        syncStructure.writeOut();
+    }
+
+    private void executePlan(SyncPlan plan, FileStructure syncStructure) {
+        long requestCount = 0;
+        long requestMillis = 0;
+        ArrayList<SyncOperation> finishedUploads = new ArrayList<SyncOperation>();
+
+        for (SyncOperation op : plan.getOperations()) {
+            DropboxFile df = op.getFile();
+            boolean succeeded = false;
+            long started = System.currentTimeMillis();
+            switch (op.getType()) {
+                case DELETE_FILE:
+                    succeeded = deleteFileFromDropbox(df);
+                    syncStructure.deleteSynced(df);
+                    break;
+                case DELETE_FOLDER:
+                    succeeded = deleteFolderOnDropbox(df);
+                    syncStructure.deleteSynced(df);
+                    break;
+                case UPLOAD_CHANGED:
+                    succeeded = uploadFileToDropbox(df);
+                    syncStructure.updateSynced(df);
+                    break;
+                case CREATE_FOLDER:
+                    succeeded = createFolderOnDropbox(df);
+                    syncStructure.addSynced(df);
+                    break;
+                case UPLOAD_NEW:
+                    succeeded = uploadFileToDropbox(df);
+                    syncStructure.addSynced(df);
+                    break;
+            }
+            long elapsed = System.currentTimeMillis() - started;
+            if (!succeeded) {
+                // Failures tend to return fast, they say nothing about the speed
+                continue;
+            }
+            if (op.isUpload()) {
+                op.setElapsedMillis(elapsed);
+                finishedUploads.add(op);
             } else {
-                uploadFileToDropbox(df);
+                requestCount++;
+                requestMillis += elapsed;
             }
-            syncStructure.addSynced(df);
         }
 
-        syncStructure.writeOut();
+        // Remember the observed speed, so the next plan gets a better estimate
+        boolean measured = false;
+        if (requestCount > 0) {
+            config.recordRequestMillis(Math.max(1, requestMillis / requestCount));
+            measured = true;
+        }
+        long uploadBytes = 0;
+        long transferMillis = 0;
+        for (SyncOperation op : finishedUploads) {
+            // Take off the round trips, what is left is time spent sending data
+            long transfer = op.getElapsedMillis() - op.getRequests() * config.getRequestMillis();
+            if (transfer >= MIN_MEASURED_TRANSFER_MILLIS) {
+                uploadBytes += op.getBytes();
+                transferMillis += transfer;
+            }
+        }
+        if (uploadBytes > 0 && transferMillis > 0) {
+            config.recordUploadBytesPerSec(Math.max(1, uploadBytes * 1000 / transferMillis));
+            measured = true;
+        }
+        if (measured) {
+            config.writeOut();
+        }
     }
 
-    private void deleteFolderOnDropbox(DropboxFile toDelete) {
+    private boolean deleteFolderOnDropbox(DropboxFile toDelete) {
         try {
             dbxClient.delete(toDelete.getName());
+            return true;
         } catch (DbxException ex) {
             System.out.println("Error uploading to Dropbox: " + ex.getMessage());
         }
+        return false;
     }
 
-    private void createFolderOnDropbox(DropboxFile toCreate) {
+    private boolean createFolderOnDropbox(DropboxFile toCreate) {
         try {
             dbxClient.createFolder(toCreate.getName());
+            return true;
         } catch (DbxException ex) {
             System.out.println("Error uploading to Dropbox: " + ex.getMessage());
         }
+        return false;
     }
 
-    private void deleteFileFromDropbox(DropboxFile toDelete) {
+    private boolean deleteFileFromDropbox(DropboxFile toDelete) {
         try {
             dbxClient.delete(toDelete.getName());
+            return true;
         } catch (DbxException ex) {
             System.out.println("Error uploading to Dropbox: " + ex.getMessage());
         }
+        return false;
     }
 
-    private void uploadFileToDropbox(DropboxFile toUpload) {
+    private boolean uploadFileToDropbox(DropboxFile toUpload) {
         InputStream upFile = null;
         try {
             upFile = new FileInputStream(config.syncFolder + toUpload.getName());
             dbxClient.uploadFile(toUpload.getName(), DbxWriteMode.force(), -1, upFile);
+            return true;
         } catch (IOException ex) {
             System.out.println("Error reading from file: " + ex.getMessage());
         } catch (DbxException ex) {
@@ -170,6 +258,7 @@ public class JavaPiSync {
         } finally {
             IOUtil.closeInput(upFile);
         }
+        return false;
     }
 
     private class Configuration {
@@ -179,6 +268,8 @@ public class JavaPiSync {
         private String apiKeySecret = "";
         private String accessToken = "";
         private String syncFolder = "";
+        private long uploadBytesPerSec = 0;
+        private long requestMillis = 0;
 
         public Configuration(File configurationFile) {
             this.configurationFile = configurationFile;
@@ -327,6 +418,23 @@ public class JavaPiSync {
             return this.syncFolder;
         }
 
+        public long getUploadBytesPerSec() {
+            return (uploadBytesPerSec > 0) ? uploadBytesPerSec : DEFAULT_UPLOAD_BYTES_PER_SEC;
+        }
+
+        public long getRequestMillis() {
+            return (requestMillis > 0) ? requestMillis : DEFAULT_REQUEST_MILLIS;
+        }
+
+        public void recordUploadBytesPerSec(long measured) {
+            // Average with the previous value to smooth out a single odd run
+            uploadBytesPerSec = (uploadBytesPerSec > 0) ? (uploadBytesPerSec + measured) / 2 : measured;
+        }
+
+        public void recordRequestMillis(long measured) {
+            requestMillis = (requestMillis > 0) ? (requestMillis + measured) / 2 : measured;
+        }
+
         private void writeOut() {
             BufferedWriter out = null;
             try {
@@ -339,6 +447,10 @@ public class JavaPiSync {
                 out.newLine();
                 out.write("SYNC_FOLDER=" + syncFolder);
                 out.newLine();
+                out.write("UPLOAD_BYTES_PER_SEC=" + uploadBytesPerSec);
+                out.newLine();
+                out.write("REQUEST_MILLIS=" + requestMillis);
+                out.newLine();
                 out.close();
                 out = null;
             } catch (IOException ioe) {
@@ -369,6 +481,10 @@ public class JavaPiSync {
                         accessToken = inputLine.substring(13).trim();
                     } else if (inputLine.startsWith("SYNC_FOLDER=")) {
                         syncFolder = inputLine.substring(12).trim();
+                    } else if (inputLine.startsWith("UPLOAD_BYTES_PER_SEC=")) {
+                        uploadBytesPerSec = parseMeasurement(inputLine.substring(21));
+                    } else if (inputLine.startsWith("REQUEST_MILLIS=")) {
+                        requestMillis = parseMeasurement(inputLine.substring(15));
                     } else {
                         System.err.println("Erroneous config file found!");
                         System.err.println("Exiting now...");
@@ -390,6 +506,15 @@ public class JavaPiSync {
                 }
             }
         }
+
+        private long parseMeasurement(String input) {
+            try {
+                return Long.parseLong(input.trim());
+            } catch (NumberFormatException nfe) {
+                // Just measure again on the next run
+                return 0;
+            }
+        }
     }
 
     private class FileStructure {
@@ -516,6 +641,17 @@ public class JavaPiSync {
             syncedFiles.add(input);
         }
 
+        public int getTrackedCount() {
+            // Only files, folders come and go with their contents
+            int count = 0;
+            for (DropboxFile df : syncedFiles) {
+                if (!df.getIsDir()) {
+                    count++;
+                }
+            }
+            return count;
+        }
+
         private String stripBasePath(String input) {
             if (input.startsWith(basePathStr)) {
                 return input.substring(basePathStrLen);
@@ -585,6 +721,241 @@ public class JavaPiSync {
         }
     }
 
+    private class SyncPlan {
+
+        private ArrayList<SyncOperation> operations = new ArrayList<SyncOperation>();
+        private int trackedCount = 0;
+        private int deleteCount = 0;
+        private int maxDeletePercent = 0;
+
+        public SyncPlan(FileStructure syncStructure, int maxDeletePercent) {
+            this.trackedCount = syncStructure.getTrackedCount();
+            this.maxDeletePercent = maxDeletePercent;
+
+            // Deleted files first, folders are kept for afterwards
+            // This to prevent deletion of the folder with files,
+            // and thus generating errors when deleting the files hereafter.
+            ArrayList<DropboxFile> deletedFiles = syncStructure.findDeleted();
+            for (int x = 0; x < deletedFiles.size(); x++) {
+                DropboxFile drbf = deletedFiles.get(x);
+                if (!drbf.getIsDir()) {
+                    operations.add(new SyncOperation(OperationType.DELETE_FILE, drbf, 0));
+                    deleteCount++;
+                    deletedFiles.remove(x);
+                    x--;
+                }
+            }
+            // Sort directories by length, to nicely delete structures
+            while (deletedFiles.size() > 0) {
+                int maxLength = 0;
+                int maxIndex = 0;
+                for (int x = 0; x < deletedFiles.size(); x++) {
+                    if (deletedFiles.get(x).getName().length() > maxLength) {
+                        maxLength = deletedFiles.get(x).getName().length();
+                        maxIndex = x;
+                    }
+                }
+                operations.add(new SyncOperation(OperationType.DELETE_FOLDER, deletedFiles.remove(maxIndex), 0));
+            }
+
+            // Changed files
+            for (DropboxFile df : syncStructure.findChanged()) {
+                operations.add(new SyncOperation(OperationType.UPLOAD_CHANGED, df, getLocalSize(df)));
+            }
+
+            // New files or directories
+            // Due to recursion, parent directories will always be created first
+            for (DropboxFile df : syncStructure.findNew()) {
+                if (df.getIsDir()) {
+                    operations.add(new SyncOperation(OperationType.CREATE_FOLDER, df, 0));
+                } else {
+                    operations.add(new SyncOperation(OperationType.UPLOAD_NEW, df, getLocalSize(df)));
+                }
+            }
+        }
+
+        public ArrayList<SyncOperation> getOperations() {
+            return this.operations;
+        }
+
+        public int getTrackedCount() {
+            return this.trackedCount;
+        }
+
+        public int getDeleteCount() {
+            return this.deleteCount;
+        }
+
+        public double getDeletePercent() {
+            if (trackedCount == 0) {
+                return 0;
+            }
+            return deleteCount * 100.0 / trackedCount;
+        }
+
+        public boolean isWithinDeleteLimit() {
+            if (deleteCount <= MIN_DELETES_CHECKED) {
+                return true;
+            }
+            return getDeletePercent() <= maxDeletePercent;
+        }
+
+        public long getTotalBytes() {
+            long bytes = 0;
+            for (SyncOperation op : operations) {
+                bytes += op.getBytes();
+            }
+            return bytes;
+        }
+
+        public long getRequestCount() {
+            long requests = 0;
+            for (SyncOperation op : operations) {
+                requests += op.getRequests();
+            }
+            return requests;
+        }
+
+        public long getEstimatedMillis() {
+            // Every request costs a round trip, uploads add their transfer time
+            return getRequestCount() * config.getRequestMillis()
+                    + getTotalBytes() * 1000 / config.getUploadBytesPerSec();
+        }
+
+        private int countOf(OperationType type) {
+            int count = 0;
+            for (SyncOperation op : operations) {
+                if (op.getType() == type) {
+                    count++;
+                }
+            }
+            return count;
+        }
+
+        private long getLocalSize(DropboxFile df) {
+            return new File(config.getSyncFolder() + df.getName()).length();
+        }
+
+        public void printJson() {
+            JsonFactory factory = new JsonFactory();
+            // Leave System.out open for whoever comes after us
+            factory.disable(JsonGenerator.Feature.AUTO_CLOSE_TARGET);
+            JsonGenerator gen = null;
+            try {
+                gen = factory.createGenerator(System.out, JsonEncoding.UTF8);
+                gen.useDefaultPrettyPrinter();
+                gen.writeStartObject();
+                gen.writeStringField("syncFolder", config.getSyncFolder());
+
+                gen.writeObjectFieldStart("summary");
+                gen.writeNumberField("deleteFiles", countOf(OperationType.DELETE_FILE));
+                gen.writeNumberField("deleteFolders", countOf(OperationType.DELETE_FOLDER));
+                gen.writeNumberField("uploadChanged", countOf(OperationType.UPLOAD_CHANGED));
+                gen.writeNumberField("createFolders", countOf(OperationType.CREATE_FOLDER));
+                gen.writeNumberField("uploadNew", countOf(OperationType.UPLOAD_NEW));
+                gen.writeNumberField("requests", getRequestCount());
+                gen.writeNumberField("bytes", getTotalBytes());
+                gen.writeEndObject();
+
+                gen.writeObjectFieldStart("estimate");
+                gen.writeNumberField("uploadBytesPerSec", config.getUploadBytesPerSec());
+                gen.writeNumberField("requestMillis", config.getRequestMillis());
+                gen.writeNumberField("durationMillis", getEstimatedMillis());
+                gen.writeEndObject();
+
+                gen.writeObjectFieldStart("safety");
+                gen.writeNumberField("trackedFiles", trackedCount);
+                gen.writeNumberField("deletedFiles", deleteCount);
+                gen.writeNumberField("deletePercent", getDeletePercent());
+                gen.writeNumberField("maxDeletePercent", maxDeletePercent);
+                gen.writeBooleanField("withinLimits", isWithinDeleteLimit());
+                gen.writeEndObject();
+
+                gen.writeArrayFieldStart("operations");
+                for (SyncOperation op : operations) {
+                    gen.writeStartObject();
+                    gen.writeStringField("type", op.getType().name());
+                    gen.writeStringField("path", op.getFile().getName());
+                    gen.writeNumberField("bytes", op.getBytes());
+                    gen.writeNumberField("requests", op.getRequests());
+                    gen.writeEndObject();
+                }
+                gen.writeEndArray();
+
+                gen.writeEndObject();
+                gen.close();
+                gen = null;
+                System.out.println();
+            } catch (IOException ioe) {
+                ioe.printStackTrace(System.err);
+            } finally {
+                if (gen != null) {
+                    try {
+                        gen.close();
+                    } catch (IOException ioe) {
+                        ioe.printStackTrace(System.err);
+                    }
+                    gen = null;
+                }
+            }
+        }
+    }
+
+    private enum OperationType {
+
+        DELETE_FILE, DELETE_FOLDER, UPLOAD_CHANGED, CREATE_FOLDER, UPLOAD_NEW
+    }
+
+    private class SyncOperation {
+
+        private OperationType type;
+        private DropboxFile file;
+        private long bytes = 0;
+        private long elapsedMillis = 0;
+
+        public SyncOperation(OperationType type, DropboxFile file, long bytes) {
+            this.type = type;
+            this.file = file;
+            this.bytes = bytes;
+        }
+
+        public OperationType getType() {
+            return this.type;
+        }
+
+        public DropboxFile getFile() {
+            return this.file;
+        }
+
+        public long getBytes() {
+            return this.bytes;
+        }
+
+        public long getRequests() {
+            if (!isUpload()) {
+                return 1;
+            }
+            if (bytes < UPLOAD_CHUNK_SIZE) {
+                // Never fills a chunk, so the SDK sends it in one go
+                return 1;
+            }
+            // Every chunk is a request, plus the commit
+            return (bytes + UPLOAD_CHUNK_SIZE - 1) / UPLOAD_CHUNK_SIZE + 1;
+        }
+
+        public long getElapsedMillis() {
+            return this.elapsedMillis;
+        }
+
+        public void setElapsedMillis(long elapsedMillis) {
+            this.elapsedMillis = elapsedMillis;
+        }
+
+        public boolean isUpload() {
+            return type == OperationType.UPLOAD_CHANGED || type == OperationType.UPLOAD_NEW;
+        }
+    }
+
     private class DropboxFile {
 
         private String name;